@@ -2,10 +2,18 @@ package DiscordMe;
 
 import org.jetbrains.annotations.Contract;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * A basic scraper for discord.me
@@ -20,6 +28,12 @@ import java.util.stream.IntStream;
 public class Database {
 
     private Connection connection;
+    //discordlink -> hex SHA-256 digest of every open serverinfo row, as read back from serverhashes
+    private final Map<String, String> serverInfoHashes = new HashMap<>();
+    //changes to serverInfoHashes made since the last commit; a null digest marks a closed row
+    private final Map<String, String> pendingServerInfoHashes = new HashMap<>();
+    //serverInfoHashes is loaded on the first call to insertTableServerInfo, so rankings-only runs never touch it
+    private boolean serverInfoHashesLoaded = false;
 
     /**
      * Prevents this object from being created without being connected to a database
@@ -98,24 +112,94 @@ public class Database {
         return insertString;
     }
 
-    public String insertTableServerInfo(String servername, LocalDateTime ldt, DiscordServer[] serverData) throws SQLException {
-        String insertString = new StringBuilder(
-                "insert into serverinfo (servername, discordlink, status, time) values ")
-                .append(
-                        IntStream.range(0, serverData.length)
-                        .mapToObj(i -> String.format(
-                                "($servername$%s$servername$, $serverlink$%s$serverlink$, '%s', '%s')",
-                                serverData[i].name(),
-                                serverData[i].link(),
-                                serverData[i].status(),
-                                ldt.toString()))
-                        .collect(Collectors.joining(", ")))
-                .append(";")
-                .toString();
+    /**
+     * Records the changes in the provided server data since the last snapshot in the psql data in a non-generic way
+     * Only new or changed servers are inserted into serverinfo (servername, discordlink, status, validfrom, validto);
+     * the previous row of a changed server is closed out by setting validto.  If the snapshot is complete, the row of
+     * any server no longer present is closed out as well.  The content digest of each open row is kept in
+     * serverhashes (discordlink, digest).
+     * The schema must be current; see upgradeServerInfoSchema().
+     * The caller must commit after each call; the in-memory digests are only advanced by reading serverhashes back
+     * once the commit has been attempted.
+     * This method is synchronized, as Scraper queries discord.me from parallel streams.
+     *
+     * @param ldt        The DateTime at which the scrape was acquired - this should be UTC
+     * @param serverData The list of servers advertising on discord.me at the time of the scrape
+     * @param complete   Whether serverData holds every server on discord.me; pass false if any page failed to load
+     *                   or parse, otherwise the missing servers will be closed out.  An empty serverData is always
+     *                   treated as incomplete.
+     * @return The PSQL string that will be used to record the changes, or an empty string if nothing changed
+     * @throws SQLException The input data is wrong or cannot be parsed, or the schema is out of date
+     */
+    public synchronized String insertTableServerInfo(LocalDateTime ldt, DiscordServer[] serverData, boolean complete) throws SQLException {
+        if (!serverInfoHashesLoaded) {
+            loadServerInfoHashes();
+        }
 
-        directStatement(insertString);
+        //discord.me may serve the same card twice (e.g. interspersed-server); the first occurrence wins
+        Map<String, DiscordServer> snapshot = Arrays.stream(serverData)
+                .collect(Collectors.toMap(DiscordServer::link, Function.identity(), (a, b) -> a, LinkedHashMap::new));
 
-        return insertString;
+        //the digests as they will stand once any uncommitted calls are committed
+        Map<String, String> current = new HashMap<>(serverInfoHashes);
+        pendingServerInfoHashes.forEach((link, digest) -> {
+            if (digest == null) {
+                current.remove(link);
+            } else {
+                current.put(link, digest);
+            }
+        });
+
+        List<DiscordServer> changed = snapshot.values().stream()
+                .filter(i -> !contentDigest(i).equals(current.get(i.link())))
+                .collect(Collectors.toList());
+
+        List<String> removed = (complete && !snapshot.isEmpty())
+                ? current.keySet().stream()
+                        .filter(i -> !snapshot.containsKey(i))
+                        .collect(Collectors.toList())
+                : Collections.emptyList();
+
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return "";
+        }
+
+        String closedLinks = Stream.concat(changed.stream().map(DiscordServer::link), removed.stream())
+                .map(i -> String.format("$serverlink$%s$serverlink$", i))
+                .collect(Collectors.joining(", "));
+
+        StringBuilder statementString = new StringBuilder()
+                .append(String.format(
+                        "update serverinfo set validto = '%s' where validto is null and discordlink in (%s); ",
+                        ldt.toString(),
+                        closedLinks))
+                .append(String.format(
+                        "delete from serverhashes where discordlink in (%s); ",
+                        closedLinks));
+
+        if (!changed.isEmpty()) {
+            statementString
+                    .append("insert into serverinfo (servername, discordlink, status, validfrom) values ")
+                    .append(changed.stream()
+                            .map(i -> String.format(
+                                    "($servername$%s$servername$, $serverlink$%s$serverlink$, '%s', '%s')",
+                                    i.name(),
+                                    i.link(),
+                                    i.status(),
+                                    ldt.toString()))
+                            .collect(Collectors.joining(", ")))
+                    .append("; ")
+                    .append("insert into serverhashes (discordlink, digest) values ")
+                    .append(serverHashValues(changed))
+                    .append(";");
+        }
+
+        directStatement(statementString.toString());
+
+        removed.forEach(i -> pendingServerInfoHashes.put(i, null));
+        changed.forEach(i -> pendingServerInfoHashes.put(i.link(), contentDigest(i)));
+
+        return statementString.toString();
     }
 
     /**
@@ -149,13 +233,21 @@ public class Database {
 
     /**
      * After a set of statements has been queued into the DB, call this to commit the changes
+     * If the commit fails, the transaction is rolled back.  Either way, the serverinfo digests changed since the last
+     * commit are read back from serverhashes, as the driver may report a rolled back transaction as committed.
      */
-    public void commit() {
+    public synchronized void commit() {
         try {
             connection.commit();
         } catch (SQLException sqle) {
             genericHandleException(sqle);
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                genericHandleException(e);
+            }
         }
+        verifyPendingServerInfoHashes();
     }
 
     /**
@@ -168,6 +260,239 @@ public class Database {
         connection.close();
     }
 
+    /**
+     * Brings serverinfo and serverhashes up to the validfrom/validto schema; safe to run against any version of either
+     * Rows written before validfrom/validto existed were appended on every snapshot; consecutive identical rows for a
+     * server are collapsed into a single interval, which is left open if the server was present in the last snapshot.
+     * If serverhashes is empty, it is rebuilt from the open serverinfo rows.
+     * This drops data (the time column and any outdated serverhashes), so it is never run implicitly.  Call it before
+     * queueing any other statements: it commits on success and rolls the whole transaction back on failure.
+     *
+     * @throws SQLException The tables could not be created, altered, or read; nothing has been changed
+     */
+    public synchronized void upgradeServerInfoSchema() throws SQLException {
+        try {
+            directStatement("create table if not exists serverinfo " +
+                    "(servername text, discordlink text, status text, validfrom timestamp, validto timestamp);");
+            if (!columnExists("serverinfo", "validfrom")) {
+                directStatement("alter table serverinfo add column validfrom timestamp;");
+            }
+            if (!columnExists("serverinfo", "validto")) {
+                directStatement("alter table serverinfo add column validto timestamp;");
+            }
+            if (columnExists("serverinfo", "time")) {
+                collapseLegacyServerInfo();
+                directStatement("alter table serverinfo drop column \"time\";");
+            }
+            if (!indexExists("serverinfo_open_discordlink")) {
+                directStatement("create index serverinfo_open_discordlink on serverinfo (discordlink) where validto is null;");
+            }
+
+            //serverhashes briefly held a 32 bit hash; it only mirrors the open serverinfo rows, so it can be rebuilt
+            if (columnExists("serverhashes", "hash")) {
+                directStatement("drop table serverhashes;");
+            }
+            directStatement("create table if not exists serverhashes (discordlink text primary key, digest bytea not null);");
+
+            boolean serverHashesEmpty;
+            try (ResultSet count = directQuery("select count(*) from serverhashes")) {
+                count.next();
+                serverHashesEmpty = count.getInt(1) == 0;
+            }
+            if (serverHashesEmpty) {
+                Map<String, DiscordServer> open = new LinkedHashMap<>();
+                try (ResultSet rows = directQuery("select coalesce(servername, ''), discordlink, coalesce(status, '') " +
+                        "from serverinfo where validto is null and discordlink is not null")) {
+                    while (rows.next()) {
+                        open.putIfAbsent(rows.getString(2), new DiscordServer(
+                                rows.getString(1),
+                                rows.getString(2),
+                                rows.getString(3)));
+                    }
+                }
+                if (!open.isEmpty()) {
+                    directStatement("insert into serverhashes (discordlink, digest) values " + serverHashValues(open.values()) + ";");
+                }
+            }
+
+            connection.commit();
+        } catch (SQLException sqle) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                sqle.addSuppressed(e);
+            }
+            throw sqle;
+        }
+
+        serverInfoHashes.clear();
+        pendingServerInfoHashes.clear();
+        serverInfoHashesLoaded = false;
+    }
+
+    /**
+     * Helper function for upgradeServerInfoSchema().  Replaces the rows written before validfrom/validto existed (one
+     * per server per snapshot, stamped with time) with one row per run of identical consecutive observations.
+     * A run ends when the server's name or status changes or when the server is missing from a snapshot; validto is
+     * the time of the first snapshot after the run, or null if the run reaches the last snapshot.
+     *
+     * @throws SQLException The legacy rows could not be collapsed
+     */
+    private void collapseLegacyServerInfo() throws SQLException {
+        directStatement("with observed as (" +
+                "select distinct on (discordlink, \"time\") servername, discordlink, status, \"time\"::timestamp as observedat " +
+                "from serverinfo where validfrom is null and \"time\" is not null " +
+                "order by discordlink, \"time\"" +
+                "), snapshots as (" +
+                "select observedat, row_number() over (order by observedat) as snap " +
+                "from (select distinct observedat from observed) distinctobserved" +
+                "), ranked as (" +
+                "select o.servername, o.discordlink, o.status, o.observedat, s.snap, " +
+                "lag(s.snap) over w as prevsnap, lag(o.servername) over w as prevname, lag(o.status) over w as prevstatus " +
+                "from observed o join snapshots s on s.observedat = o.observedat " +
+                "window w as (partition by o.discordlink order by s.snap)" +
+                "), grouped as (" +
+                "select *, sum(case when prevsnap = snap - 1 " +
+                "and prevname is not distinct from servername " +
+                "and prevstatus is not distinct from status then 0 else 1 end) " +
+                "over (partition by discordlink order by snap) as run " +
+                "from ranked" +
+                "), runs as (" +
+                "select discordlink, run, min(servername) as servername, min(status) as status, " +
+                "min(observedat) as validfrom, max(snap) as lastsnap " +
+                "from grouped group by discordlink, run" +
+                ") " +
+                "insert into serverinfo (servername, discordlink, status, validfrom, validto) " +
+                "select r.servername, r.discordlink, r.status, r.validfrom, nextsnapshot.observedat " +
+                "from runs r left join snapshots nextsnapshot on nextsnapshot.snap = r.lastsnap + 1;");
+        directStatement("delete from serverinfo where validfrom is null;");
+    }
+
+    /**
+     * Loads the content digest of every open serverinfo row into memory, discarding any digests already held
+     *
+     * @throws SQLException The schema is out of date or the serverhashes table could not be read
+     */
+    private synchronized void loadServerInfoHashes() throws SQLException {
+        //check through the catalog first; a failed select would abort the caller's transaction
+        if (!columnExists("serverhashes", "digest") || !columnExists("serverinfo", "validto")) {
+            throw new SQLException("The serverinfo schema is out of date; call Database::upgradeServerInfoSchema first.");
+        }
+
+        serverInfoHashes.clear();
+        try (ResultSet hashes = directQuery("select discordlink, encode(digest, 'hex') from serverhashes")) {
+            while (hashes.next()) {
+                serverInfoHashes.put(hashes.getString(1), hashes.getString(2));
+            }
+        }
+        serverInfoHashesLoaded = true;
+    }
+
+    /**
+     * Replaces the in-memory digest of every server changed since the last commit with what serverhashes actually holds
+     * If serverhashes cannot be read, the digests are discarded and reloaded on the next call to insertTableServerInfo
+     */
+    private synchronized void verifyPendingServerInfoHashes() {
+        if (pendingServerInfoHashes.isEmpty()) {
+            return;
+        }
+
+        String pendingLinks = pendingServerInfoHashes.keySet().stream()
+                .map(i -> String.format("$serverlink$%s$serverlink$", i))
+                .collect(Collectors.joining(", "));
+
+        try (ResultSet hashes = directQuery(String.format(
+                "select discordlink, encode(digest, 'hex') from serverhashes where discordlink in (%s)",
+                pendingLinks))) {
+            pendingServerInfoHashes.keySet().forEach(serverInfoHashes::remove);
+            while (hashes.next()) {
+                serverInfoHashes.put(hashes.getString(1), hashes.getString(2));
+            }
+        } catch (SQLException sqle) {
+            genericHandleException(sqle);
+            serverInfoHashes.clear();
+            serverInfoHashesLoaded = false;
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                genericHandleException(e);
+            }
+        } finally {
+            pendingServerInfoHashes.clear();
+        }
+    }
+
+    /**
+     * Returns whether the given column exists on the given table in the current schema
+     *
+     * @param table  The name of the table
+     * @param column The name of the column
+     * @return true if the column exists
+     * @throws SQLException The catalog could not be read
+     */
+    private boolean columnExists(String table, String column) throws SQLException {
+        try (ResultSet columns = directQuery(String.format(
+                "select 1 from information_schema.columns " +
+                        "where table_schema = current_schema() and table_name = '%s' and column_name = '%s'",
+                table,
+                column))) {
+            return columns.next();
+        }
+    }
+
+    /**
+     * Returns whether the given index exists in the current schema
+     * create index if not exists requires PostgreSQL 9.5
+     *
+     * @param index The name of the index
+     * @return true if the index exists
+     * @throws SQLException The catalog could not be read
+     */
+    private boolean indexExists(String index) throws SQLException {
+        try (ResultSet indexes = directQuery(String.format(
+                "select 1 from pg_indexes where schemaname = current_schema() and indexname = '%s'",
+                index))) {
+            return indexes.next();
+        }
+    }
+
+    /**
+     * Returns the PSQL values list inserting the content digest of each of the given servers into serverhashes
+     *
+     * @param servers The servers to insert
+     * @return The values list, without the leading "values"
+     */
+    private static String serverHashValues(Collection<DiscordServer> servers) {
+        return servers.stream()
+                .map(i -> String.format(
+                        "($serverlink$%s$serverlink$, decode('%s', 'hex'))",
+                        i.link(),
+                        contentDigest(i)))
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Returns the hex SHA-256 digest of the data stored in serverinfo for a server; the link is excluded as it is the
+     * key.  Each field is prefixed with its length so that no two distinct (name, status) pairs share an input.
+     *
+     * @param server The server to digest
+     * @return The content digest of the server
+     */
+    private static String contentDigest(DiscordServer server) {
+        byte[] name = server.name().getBytes(StandardCharsets.UTF_8);
+        byte[] status = server.status().getBytes(StandardCharsets.UTF_8);
+        byte[] input = ByteBuffer.allocate(8 + name.length + status.length)
+                .putInt(name.length).put(name)
+                .putInt(status.length).put(status)
+                .array();
+        try {
+            return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(input)));
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Print the exception's stack trace, name, and message; and attempt to continue execution
      *